@@ -0,0 +1,175 @@
+/******************************************************************************
+ *  Compilation:  javac BitmapAppender.java
+ *  Execution:    java BitmapAppender 1 out.bin < more.bin
+ *  Execution:    java BitmapAppender 4 out.bin < more.bin
+ *  Dependencies: BitmapCompressor.java BinaryStdIn.java
+ *
+ *  Appends the bits from standard input to a file compressed with
+ *  BitmapCompressor, without expanding and re-compressing it.
+ *
+ *  % java BitmapCompressor - 1 < a.bin > out.bin
+ *  % java BitmapAppender 1 out.bin < b.bin
+ *  % java BitmapCompressor + 1 < out.bin     (a.bin followed by b.bin)
+ ******************************************************************************/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ *  The {@code BitmapAppender} class provides static methods for adding bits to
+ *  the end of a compressed bitmap. Only the end of the file is read, and if the
+ *  last run or streak carries on into the new bits it is patched in place, so
+ *  the cost of an append depends only on the number of bits appended.
+ *  <p>
+ *  Two formats can be appended to: the run lengths of
+ *  {@code BitmapCompressor.runLengthEncoding()}, and the streaks with a trailer of
+ *  {@code BitmapCompressor.trueTrailerEncoding()}. The format of {@code trueEncoding()}
+ *  keeps its length at the start and cannot be appended to.
+ *
+ *  @author Sohum Berry
+ */
+public final class BitmapAppender {
+    private static final int TRAILER_SIZE = 12;     // last streak offset, last streak end, length
+
+    // don't instantiate
+    private BitmapAppender() { }
+
+    /**
+     * Appends the first n bits of {@code bits} to the run lengths in {@code channel}.
+     * <p>
+     * The run lengths alternate between 0s and 1s starting with 0s, so the type of the
+     * last run follows from whether the file has an odd or even number of bytes.
+     */
+    public static void appendRuns(FileChannel channel, boolean[] bits, int n) throws IOException {
+        if (n == 0) return;
+        long size = channel.size();
+
+        // Start from the last run so it can be extended, or from an empty run of 0s
+        long position = 0;
+        boolean type = false;
+        int length = 0;
+        if (size > 0) {
+            position = size - 1;
+            type = position % 2 == 1;
+            ByteBuffer last = ByteBuffer.allocate(1);
+            BitmapCompressor.readFully(channel, last, position);
+            length = last.get() & 0xff;
+        }
+
+        // The first new run carries on from the last one, which is rewritten
+        ByteBuffer out = ByteBuffer.allocate((int) BitmapCompressor.maxRunsSize(n + 255L));
+        int i = 0;
+        while (true) {
+            while (i < n && bits[i] == type) {
+                length++;
+                i++;
+            }
+            BitmapCompressor.putRun(out, length);
+            if (i == n) {
+                break;
+            }
+            type = !type;
+            length = 0;
+        }
+        out.flip();
+        writeFully(channel, out, position);
+    }
+
+    /**
+     * Appends the first n bits of {@code bits} to the streaks in {@code channel}, which
+     * must have been written by {@code BitmapCompressor.trueTrailerEncoding()}.
+     * <p>
+     * New streaks overwrite the old trailer. If the last streak runs up to the end of the
+     * bitmap and the new bits start with a 1, it is rewritten with its new length first.
+     */
+    public static void appendStreaks(FileChannel channel, boolean[] bits, int n) throws IOException {
+        if (n == 0) return;
+        long size = channel.size();
+        if (size < TRAILER_SIZE) throw new IllegalStateException("Missing trailer");
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        BitmapCompressor.readFully(channel, trailer, size - TRAILER_SIZE);
+        int lastStart = trailer.getInt();
+        int previousEnd = trailer.getInt();
+        int length = trailer.getInt();
+        if ((long) length + n > Integer.MAX_VALUE) throw new IllegalArgumentException("Bitmap too long");
+
+        // A streak is at most 10 bytes and needs at least 2 bits, except the first
+        ByteBuffer out = ByteBuffer.allocate(10 * (n / 2 + 2) + TRAILER_SIZE);
+        long position = size - TRAILER_SIZE;
+        int i = 0;
+        if (lastStart >= 0 && previousEnd == length && bits[0]) {
+            // The last streak continues, so read it back and rewrite it longer
+            ByteBuffer pair = ByteBuffer.allocate((int) (size - TRAILER_SIZE - lastStart));
+            BitmapCompressor.readFully(channel, pair, lastStart);
+            long gap = BitmapCompressor.getVarint(pair);
+            long trueStreakStart = previousEnd - (BitmapCompressor.getVarint(pair) + 1);
+            while (i < n && bits[i]) {
+                i++;
+            }
+            position = lastStart;
+            BitmapCompressor.putVarint(out, gap);
+            BitmapCompressor.putVarint(out, length + i - trueStreakStart - 1);
+            previousEnd = length + i;
+        }
+
+        while (i < n) {
+            // Skip to the start of the next streak of 1s
+            while (i < n && !bits[i]) {
+                i++;
+            }
+            if (i == n) {
+                break;
+            }
+            int trueStreakStart = i;
+            while (i < n && bits[i]) {
+                i++;
+            }
+            lastStart = (int) (position + out.position());
+            BitmapCompressor.putVarint(out, length + trueStreakStart - previousEnd);
+            BitmapCompressor.putVarint(out, i - trueStreakStart - 1);
+            previousEnd = length + i;
+        }
+        out.putInt(lastStart);
+        out.putInt(previousEnd);
+        out.putInt(length + n);
+        out.flip();
+        writeFully(channel, out, position);
+        channel.truncate(position + out.limit());
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Appends the bits from standard input to the file named by the second command-line
+     * argument, which was compressed with the codec given by the first argument
+     * ("1" for run lengths, "4" for streaks with a trailer).
+     *
+     * @param args the command-line arguments
+     */
+    public static void main(String[] args) throws IOException {
+        int codec = Integer.parseInt(args[0]);
+        if (codec != 1 && codec != 4) throw new IllegalArgumentException("Illegal command line argument");
+
+        boolean[] bits = new boolean[1024];
+        int n = 0;
+        while (!BinaryStdIn.isEmpty()) {
+            if (n == bits.length) {
+                bits = Arrays.copyOf(bits, 2 * n);
+            }
+            bits[n++] = BinaryStdIn.readBoolean();
+        }
+
+        try (FileChannel channel = FileChannel.open(Path.of(args[1]), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (codec == 1) appendRuns(channel, bits, n);
+            else            appendStreaks(channel, bits, n);
+        }
+    }
+}
@@ -0,0 +1,428 @@
+/******************************************************************************
+ *  Compilation:  javac BitmapCache.java
+ *  Execution:    java BitmapCache - 1 a.bin b.bin a.bin   (compress each file)
+ *  Execution:    java BitmapCache + 1 a.out b.out         (expand each file)
+ *  Dependencies: BitmapCompressor.java Encoder.java Decoder.java BinaryStdIn.java BinaryStdOut.java
+ *
+ *  Compresses or expands a batch of files, serving repeated inputs from
+ *  a cache instead of running the codec again. Each result is written
+ *  next to its input with a ".out" suffix.
+ *
+ *  % java BitmapCache - 1 q32x48.bin mystery.bin q32x48.bin
+ *  1 hits, 2 misses
+ ******************************************************************************/
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *  The {@code BitmapCache} class puts a content-addressed cache in front of
+ *  {@code BitmapCompressor.compress()} and {@code BitmapCompressor.expand()}.
+ *  Results are keyed by the xxHash64 of the input together with the operation
+ *  and codec, and the input itself is kept so a hash collision can never
+ *  return the wrong result.
+ *  <p>
+ *  Entries are evicted least recently used first once their total size in
+ *  bytes exceeds the limit. If a spill directory is given, evicted entries
+ *  are written there and read back on a later miss.
+ *  <p>
+ *  A cache can be shared between threads. Its lock is only held to look up,
+ *  insert and evict entries; codecs, spill files and copies of results all
+ *  run outside it, so a slow miss never holds up a hit.
+ *  <p>
+ *  Misses for codecs 0 and 1 are run in memory through {@code Encoder} and
+ *  {@code Decoder}, so those codecs are safe to use from a server. The other
+ *  codecs only read and write through {@code BinaryStdIn} and {@code BinaryStdOut},
+ *  so a miss for them replaces {@code System.in} and {@code System.out} for the
+ *  whole process while it runs, and such misses run one at a time across all
+ *  caches. They are for batch use only: anything else
+ *  printed to {@code System.out} during such a miss ends up in the result.
+ *
+ *  @author Sohum Berry
+ */
+public class BitmapCache {
+    private static final boolean COMPRESS = true;
+    private static final boolean EXPAND = false;
+    private static final int ENTRY_OVERHEAD = 64;   // rough size of an entry besides its arrays
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INTS = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    private final long maxBytes;
+    private final File spillDirectory;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+
+    /**
+     * Identifies a result by the hash of its input and how it was produced.
+     */
+    private static final class Key {
+        private final long hash;
+        private final int length;
+        private final boolean compress;
+        private final int codec;
+
+        Key(long hash, int length, boolean compress, int codec) {
+            this.hash = hash;
+            this.length = length;
+            this.compress = compress;
+            this.codec = codec;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return hash == k.hash && length == k.length && compress == k.compress && codec == k.codec;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(hash);
+        }
+
+        // name of the file this key spills to
+        String fileName() {
+            return String.format("%016x-%d-%c%d.bmc", hash, length, compress ? 'c' : 'e', codec);
+        }
+    }
+
+    private static final class Entry {
+        private final byte[] input;
+        private final byte[] output;
+
+        Entry(byte[] input, byte[] output) {
+            this.input = input;
+            this.output = output;
+        }
+
+        long size() {
+            return input.length + output.length + ENTRY_OVERHEAD;
+        }
+    }
+
+    /**
+     * Creates an in-memory cache holding at most {@code maxBytes} bytes of inputs and results.
+     */
+    public BitmapCache(long maxBytes) {
+        this(maxBytes, null);
+    }
+
+    /**
+     * Creates a cache holding at most {@code maxBytes} bytes in memory, which spills
+     * evicted entries to {@code spillDirectory} if it is not null.
+     */
+    public BitmapCache(long maxBytes, File spillDirectory) {
+        if (maxBytes < 0) throw new IllegalArgumentException("Illegal cache size = " + maxBytes);
+        if (spillDirectory != null && !spillDirectory.isDirectory() && !spillDirectory.mkdirs()) {
+            throw new IllegalArgumentException("Could not create spill directory " + spillDirectory);
+        }
+        this.maxBytes = maxBytes;
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Returns {@code input} compressed with {@code BitmapCompressor.compress(encodingType)}.
+     * Encoding types other than 0 and 1 take over standard output while they run.
+     */
+    public byte[] compress(byte[] input, int encodingType) {
+        if (encodingType != 0 && encodingType != 1 && encodingType != 4 && encodingType != 5) {
+            throw new IllegalArgumentException("Illegal encoding type = " + encodingType);
+        }
+        return lookup(input, COMPRESS, encodingType);
+    }
+
+    /**
+     * Returns {@code input} expanded with {@code BitmapCompressor.expand(decodingType)}.
+     * Decoding types other than 0 and 1 take over standard output while they run.
+     */
+    public byte[] expand(byte[] input, int decodingType) {
+        if (decodingType < 0 || decodingType > 5) {
+            throw new IllegalArgumentException("Illegal decoding type = " + decodingType);
+        }
+        return lookup(input, EXPAND, decodingType);
+    }
+
+    /**
+     * Returns the number of calls served from memory or the spill directory.
+     */
+    public synchronized long hits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of calls that had to run the codec.
+     */
+    public synchronized long misses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of bytes currently held in memory.
+     */
+    public synchronized long size() {
+        return bytes;
+    }
+
+    // entries are never changed once created, so they can be read outside the lock
+    private byte[] lookup(byte[] input, boolean compress, int codec) {
+        Key key = new Key(hash(input, 0, input.length, codec), input.length, compress, codec);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry == null) entry = unspill(key);
+        if (entry != null && Arrays.equals(entry.input, input)) {
+            synchronized (this) {
+                hits++;
+            }
+            return entry.output.clone();
+        }
+
+        synchronized (this) {
+            misses++;
+        }
+        byte[] output = run(input, compress, codec);
+        put(key, new Entry(input.clone(), output));
+        return output.clone();
+    }
+
+    private void put(Key key, Entry entry) {
+        List<Map.Entry<Key, Entry>> evicted = new ArrayList<>();
+        synchronized (this) {
+            Entry old = entries.put(key, entry);
+            if (old != null) bytes -= old.size();
+            bytes += entry.size();
+
+            // evict least recently used entries
+            Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                Map.Entry<Key, Entry> eldest = it.next();
+                it.remove();
+                bytes -= eldest.getValue().size();
+                evicted.add(eldest);
+            }
+        }
+        // then spill them, if possible, without holding the lock
+        for (Map.Entry<Key, Entry> e : evicted) {
+            spill(e.getKey(), e.getValue());
+        }
+    }
+
+    // an existing file is replaced, since it may hold another input with the same key
+    private void spill(Key key, Entry entry) {
+        if (spillDirectory == null) return;
+        Path target = new File(spillDirectory, key.fileName()).toPath();
+        try {
+            // write to a temporary file first so a reader never sees half an entry
+            Path temp = Files.createTempFile(spillDirectory.toPath(), "spill", ".tmp");
+            ByteBuffer buffer = ByteBuffer.allocate(4 + entry.input.length + entry.output.length);
+            buffer.putInt(entry.input.length).put(entry.input).put(entry.output);
+            Files.write(temp, buffer.array());
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            // the spill directory is only an optimization, so losing an entry is fine
+        }
+    }
+
+    // reads an entry back from the spill directory and returns it to memory
+    private Entry unspill(Key key) {
+        if (spillDirectory == null) return null;
+        File file = new File(spillDirectory, key.fileName());
+        if (!file.isFile()) return null;
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            int inputLength = buffer.getInt();
+            if (inputLength != key.length || inputLength > buffer.remaining()) return null;
+            byte[] input = new byte[inputLength];
+            byte[] output = new byte[buffer.remaining() - inputLength];
+            buffer.get(input).get(output);
+            Entry entry = new Entry(input, output);
+            put(key, entry);
+            return entry;
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static byte[] run(byte[] input, boolean compress, int codec) {
+        if (codec == 0 || codec == 1) {
+            return compress ? encode(input, codec) : decode(input, codec);
+        }
+        return runThroughStandardStreams(input, compress, codec);
+    }
+
+    // compresses with Encoder, reading bit 8k + j from bit 7 - j of input[k] as BinaryStdIn does
+    private static byte[] encode(byte[] input, int codec) {
+        Encoder encoder = codec == 0 ? Encoder.TRUE : Encoder.RUN_LENGTH;
+        long nbits = 8L * input.length;
+        long[] bits = new long[(input.length + 7) / 8];
+        for (int k = 0; k < input.length; k++) {
+            bits[k >>> 3] |= (long) (Integer.reverse(input[k] & 0xff) >>> 24) << (8 * (k & 7));
+        }
+        long max = encoder.maxEncodedSize(nbits);
+        if (max > Integer.MAX_VALUE - 8) throw new IllegalArgumentException("Input too large");
+        ByteBuffer out = ByteBuffer.allocate((int) max);
+        encoder.encode(bits, nbits, out);
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    // expands with Decoder, padding the last byte with 0s as BinaryStdOut does
+    private static byte[] decode(byte[] input, int codec) {
+        Decoder decoder = codec == 0 ? Decoder.TRUE : Decoder.RUN_LENGTH;
+        ByteBuffer in = ByteBuffer.wrap(input);
+        long nbits = 0;
+        if (codec == 0) {
+            nbits = BitmapCompressor.getVarint(in.duplicate());
+        }
+        else {
+            // every byte is the length of a run
+            for (byte b : input) nbits += b & 0xff;
+        }
+        if (nbits < 0 || (nbits + 7) / 8 > Integer.MAX_VALUE - 8) throw new IllegalStateException("Bitmap too large");
+        long[] bits = new long[(int) ((nbits + 63) / 64)];
+        nbits = decoder.decode(in, bits);
+
+        byte[] output = new byte[(int) ((nbits + 7) / 8)];
+        for (int k = 0; k < output.length; k++) {
+            output[k] = (byte) (Integer.reverse((int) (bits[k >>> 3] >>> (8 * (k & 7))) & 0xff) >>> 24);
+        }
+        return output;
+    }
+
+    // runs the codec with System.in and System.out pointed at byte arrays; the class
+    // is locked, since the standard streams are shared by every cache in the process
+    private static synchronized byte[] runThroughStandardStreams(byte[] input, boolean compress, int codec) {
+        InputStream stdin = System.in;
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            System.setIn(new ByteArrayInputStream(input));
+            System.setOut(new PrintStream(output));
+            if (compress) BitmapCompressor.compress(codec);
+            else          BitmapCompressor.expand(codec);
+        }
+        finally {
+            // the codecs never close BinaryStdIn, and do not close BinaryStdOut if they
+            // throw, so reset both before the next run; a failed run is never cached
+            BinaryStdIn.close();
+            BinaryStdOut.close();
+            System.setIn(stdin);
+            System.setOut(stdout);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Returns the xxHash64 of {@code data[off..off+len)} with the given seed.
+     */
+    public static long hash(byte[] data, int off, int len, long seed) {
+        int end = off + len;
+        int p = off;
+        long h;
+        if (len >= 32) {
+            long v1 = seed + PRIME1 + PRIME2;
+            long v2 = seed + PRIME2;
+            long v3 = seed;
+            long v4 = seed - PRIME1;
+            int limit = end - 32;
+            do {
+                v1 = round(v1, (long) LONGS.get(data, p));
+                v2 = round(v2, (long) LONGS.get(data, p + 8));
+                v3 = round(v3, (long) LONGS.get(data, p + 16));
+                v4 = round(v4, (long) LONGS.get(data, p + 24));
+                p += 32;
+            } while (p <= limit);
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = merge(h, v1);
+            h = merge(h, v2);
+            h = merge(h, v3);
+            h = merge(h, v4);
+        }
+        else {
+            h = seed + PRIME5;
+        }
+        h += len;
+
+        for (; p + 8 <= end; p += 8) {
+            h ^= round(0, (long) LONGS.get(data, p));
+            h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+        }
+        if (p + 4 <= end) {
+            h ^= ((int) INTS.get(data, p) & 0xFFFFFFFFL) * PRIME1;
+            h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+            p += 4;
+        }
+        for (; p < end; p++) {
+            h ^= (data[p] & 0xFFL) * PRIME5;
+            h = Long.rotateLeft(h, 11) * PRIME1;
+        }
+
+        h ^= h >>> 33;
+        h *= PRIME2;
+        h ^= h >>> 29;
+        h *= PRIME3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private static long round(long acc, long lane) {
+        acc += lane * PRIME2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME1;
+    }
+
+    private static long merge(long h, long v) {
+        h ^= round(0, v);
+        return h * PRIME1 + PRIME4;
+    }
+
+    /**
+     * Compresses ("-") or expands ("+") every file named after the codec number,
+     * writing each result to the same name with ".out" appended, then prints how
+     * many files were served from the cache.
+     *
+     * @param args the command-line arguments
+     */
+    public static void main(String[] args) throws IOException {
+        boolean compress;
+        if      (args[0].equals("-")) compress = true;
+        else if (args[0].equals("+")) compress = false;
+        else throw new IllegalArgumentException("Illegal command line argument");
+        int codec = Integer.parseInt(args[1]);
+
+        BitmapCache cache = new BitmapCache(64L << 20);
+        for (int i = 2; i < args.length; i++) {
+            byte[] input = Files.readAllBytes(Path.of(args[i]));
+            byte[] output = compress ? cache.compress(input, codec) : cache.expand(input, codec);
+            Files.write(Path.of(args[i] + ".out"), output);
+        }
+        System.out.println(cache.hits() + " hits, " + cache.misses() + " misses");
+    }
+}
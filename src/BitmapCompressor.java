@@ -2,6 +2,11 @@
  *  Compilation:  javac BitmapCompressor.java
  *  Execution:    java BitmapCompressor - < input.bin   (compress)
  *  Execution:    java BitmapCompressor + < input.bin   (expand)
+ *  Execution:    java BitmapCompressor - 2 frameBits < frames.bin   (compress a sequence)
+ *  Execution:    java BitmapCompressor + 2 k < input.bin            (expand frame k)
+ *  Execution:    java BitmapCompressor - 3 width < input.bin        (compress with previews)
+ *  Execution:    java BitmapCompressor + 3 k < input.bin            (expand preview level k)
+ *  Execution:    java BitmapCompressor - 5 bitsPerPixel < input.bin (compress by bit plane)
  *  Dependencies: BinaryIn.java BinaryOut.java
  *  Data files:   q32x48.bin
  *                q64x96.bin
@@ -16,8 +21,13 @@
  *  1240 bits
  ******************************************************************************/
 
-import java.util.LinkedList;
-import java.util.Queue;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
 /**
  *  The {@code BitmapCompressor} class provides static methods for compressing
@@ -29,6 +39,17 @@ import java.util.Queue;
  *  @author Sohum Berry
  */
 public class BitmapCompressor {
+    // Number of frames between keyframes in a sequence, if not given on the command line
+    private static final int DEFAULT_KEYFRAME_INTERVAL = 30;
+    // Types of the records in a sequence
+    private static final int END_OF_FRAMES = 0;
+    private static final int KEYFRAME = 1;
+    private static final int DELTA_FRAME = 2;
+    private static final int PARTIAL_FRAME = 3;
+
+    // Runs and varints are put into this buffer, which is reused, before going to standard output
+    private static ByteBuffer scratch = ByteBuffer.allocate(1 << 12);
+
     /**
      * Sample Usage: java BitmapCompressor - 0 < in.bin > out.bin
      * | This would compress in.bin into out.bin using my encoding algorithm.
@@ -37,102 +58,388 @@ public class BitmapCompressor {
      * and writes the results to standard output.
      */
     // Write a 0 on command line to use my encoding algorithm, write a 1 to use Sedgewick's runLengthEncoding.
+    // Write a 4 to use my encoding algorithm with the length at the end, so the file can be appended to.
+    // Write a 5 to compress an 8-bit grayscale image one bit plane at a time.
     public static void compress(int encodingType) {
         if (encodingType == 0) {
             trueEncoding();
         } else if (encodingType == 1) {
             runLengthEncoding();
+        } else if (encodingType == 4) {
+            trueTrailerEncoding();
+        } else if (encodingType == 5) {
+            planeEncoding(8, false);
         }
     }
 
+    /**
+     * Writes the length of the bitmap, then for every streak of 1s the gap since the end
+     * of the previous streak and the streak length minus 1, all as varints. Small gaps and
+     * short streaks take a single byte, and there is no limit on the size of the bitmap.
+     */
     public static void trueEncoding() {
-        // Create a queue to hold all the boolean values from the inputted bitmap
-        Queue<Boolean> input = new LinkedList<Boolean>();
-        while (!BinaryStdIn.isEmpty()) {
-            input.add(BinaryStdIn.readBoolean());
-        }
-        int n = input.size();
-        // Write out the length of the string using 16 bits. No need for all 32, only positive values are needed.
-        BinaryStdOut.write(n, 16);
+        boolean[] input = readBits();
+        writeVarint(input.length);
+        writeStreaks(input);
+        BinaryStdOut.close();
+    }
 
-        short trueStreak = 0;
-        int trueStreakStart = 0;
+    /**
+     * Sample Usage: java BitmapCompressor - 4 < in.bin > out.bin
+     * | This would compress in.bin with my encoding algorithm, but with the length at the end.
+     * <p>
+     * The streaks are written as in {@code trueEncoding()}, followed by a trailer of three
+     * 32-bit ints: the byte offset of the last streak (-1 if there is none), where the last
+     * streak ends, and the length of the bitmap. {@code BitmapAppender} uses the trailer to
+     * add bits to the end without re-encoding the rest of the file.
+     */
+    public static void trueTrailerEncoding() {
+        boolean[] input = readBits();
+        int[] last = writeStreaks(input);
+        BinaryStdOut.write(last[0]);
+        BinaryStdOut.write(last[1]);
+        BinaryStdOut.write(input.length);
+        BinaryStdOut.close();
+    }
 
-        // Loop through every bit in the bitmap
-        for (int i = 0; i < n; i++) {
-            // If the bit is a 1 initialize the start of a true streak if needed
-            if (input.remove()) {
-                if (trueStreak == 0) {
-                    trueStreakStart = i;
-                }
-                // Increment the number of consecutive 1s
-                trueStreak++;
-            } else {
-                // Reset the true streak if a 0 is encountered and write out the data of the positions of 1s
-                if (trueStreak > 0) {
-                    BinaryStdOut.write(trueStreakStart, 16);
-                    BinaryStdOut.write(trueStreak, 8);
-                    trueStreak = 0;
-                }
+    /**
+     * Writes every streak of 1s as the gap since the end of the previous streak and the
+     * streak length minus 1. Returns the byte offset of the last streak relative to the
+     * first one written (-1 if there were none) and the position where it ends.
+     */
+    private static int[] writeStreaks(boolean[] input) {
+        int n = input.length;
+        int previousEnd = 0;
+        int written = 0;
+        int lastStart = -1;
+        int i = 0;
+        while (i < n) {
+            // Skip to the start of the next streak of 1s
+            while (i < n && !input[i]) {
+                i++;
+            }
+            if (i == n) {
+                break;
             }
+            int trueStreakStart = i;
+            while (i < n && input[i]) {
+                i++;
+            }
+            // Write where the streak starts relative to the last one, and how long it is
+            lastStart = written;
+            written += writeVarint(trueStreakStart - previousEnd);
+            written += writeVarint(i - trueStreakStart - 1);
+            previousEnd = i;
         }
+        return new int[] { lastStart, previousEnd };
+    }
 
-        BinaryStdOut.close();
+    // Same as putVarint(), but to standard output; returns the number of bytes written
+    private static int writeVarint(int x) {
+        ByteBuffer buffer = scratch(10);
+        putVarint(buffer, x);
+        return drain(buffer);
+    }
+
+    // Puts x 7 bits at a time, low bits first, setting the high bit of every byte but the last
+    static void putVarint(ByteBuffer buffer, long x) {
+        while ((x & ~0x7fL) != 0) {
+            buffer.put((byte) ((x & 0x7f) | 0x80));
+            x >>>= 7;
+        }
+        buffer.put((byte) x);
     }
 
     public static void runLengthEncoding() {
-        // Read the 1s and 0s individually into a string
-        String s = "";
+        boolean[] bits = readBits();
+        writeRuns(bits, null, bits.length);
+        BinaryStdOut.close();
+    }
+
+    // Read the 1s and 0s individually into an array that grows as needed
+    private static boolean[] readBits() {
+        boolean[] bits = new boolean[1024];
+        int n = 0;
         while (!BinaryStdIn.isEmpty()) {
-            s += (BinaryStdIn.readBoolean() ? '1' : '0');
+            if (n == bits.length) {
+                bits = Arrays.copyOf(bits, 2 * n);
+            }
+            bits[n++] = BinaryStdIn.readBoolean();
         }
-        int n = s.length();
-        int position = 0;
-        int falseStreak = 0;
-        int trueStreak = 0;
-        boolean end = false;
+        return Arrays.copyOf(bits, n);
+    }
 
+    // Same as putRuns(), but to standard output; returns the number of bytes written
+    private static int writeRuns(boolean[] bits, boolean[] base, int n) {
+        ByteBuffer buffer = scratch(maxRunsSize(n));
+        putRuns(bits, base, n, buffer);
+        return drain(buffer);
+    }
+
+    // The most bytes putRuns() can write for n bits: one per run plus a 255, 0 pair per 255 bits
+    static long maxRunsSize(long n) {
+        return n + 2 * (n / 255) + 2;
+    }
+
+    /**
+     * Puts the first n bits of {@code bits} as alternating 8-bit lengths of 0s and 1s,
+     * starting with 0s. If {@code base} is not null, the runs of {@code bits[i] ^ base[i]}
+     * are written instead, which is what the sequence mode uses for delta frames.
+     */
+    static void putRuns(boolean[] bits, boolean[] base, int n, ByteBuffer out) {
+        int position = 0;
         while (position < n) {
-            // While there is a 0
-            while (s.charAt(position) == '0') {
-                // Increment the 0s streak and the position
-                falseStreak++;
+            // Count the 0s up to the next 1 and write them
+            int start = position;
+            while (position < n && bits[position] == (base != null && base[position])) {
                 position++;
-                // If at the final bit, set end to true and break out of the loop
-                if (position==n) {
-                    end = true;
-                    break;
-                }
-            }
-            // Write the bits in chunks of 225 (8 bits)
-            while (falseStreak > 255) {
-                BinaryStdOut.write(255, 8);
-                // Alternate with 0 to write the rest of the bits that are 0
-                BinaryStdOut.write(0, 8);
-                // Decrement the false streak for the ones that were just written
-                falseStreak-=255;
             }
-            // Write the final 8 bits of the false streak, then reset it
-            BinaryStdOut.write(falseStreak, 8);
-            falseStreak = 0;
+            putRun(out, position - start);
 
-            // Check if the position is at the end of the string and end the loop if so
-            if (end) {
+            // End the loop if the position is at the end of the bitmap
+            if (position == n) {
                 break;
             }
 
-            // Same as above
-            while (s.charAt(position) == '1') {
-                trueStreak++;
+            // Same as above for the 1s
+            start = position;
+            while (position < n && bits[position] != (base != null && base[position])) {
                 position++;
             }
-            while (trueStreak > 255) {
-                BinaryStdOut.write(255, 8);
-                BinaryStdOut.write(0, 8);
-                trueStreak-=255;
+            putRun(out, position - start);
+        }
+    }
+
+    // Puts a run length in chunks of 255 (8 bits), each followed by an empty run of the other bit
+    static void putRun(ByteBuffer out, long length) {
+        while (length > 255) {
+            out.put((byte) 255);
+            out.put((byte) 0);
+            length -= 255;
+        }
+        out.put((byte) length);
+    }
+
+    // Returns the reused buffer, cleared and large enough for size bytes
+    private static ByteBuffer scratch(long size) {
+        if (size > Integer.MAX_VALUE) throw new IllegalArgumentException("Bitmap too large");
+        if (scratch.capacity() < size) {
+            scratch = ByteBuffer.allocate((int) size);
+        }
+        scratch.clear();
+        return scratch;
+    }
+
+    // Writes the bytes put into buffer to standard output and returns how many there were
+    private static int drain(ByteBuffer buffer) {
+        int n = buffer.position();
+        for (int i = 0; i < n; i++) {
+            BinaryStdOut.write(buffer.get(i));
+        }
+        return n;
+    }
+
+    /**
+     * Sample Usage: java BitmapCompressor - 2 1536 30 < frames.bin > out.bin
+     * | This would compress frames.bin, a sequence of 1536-bit frames, writing every
+     * 30th frame in full and every other frame as its difference from the one before.
+     * <p>
+     * Every frame is encoded with the run length codec, either as is (a keyframe) or
+     * XORed with the previous frame (a delta frame), so frames that barely change
+     * compress down to a few runs. A trailer lists where every keyframe starts, so
+     * {@code decodeFrame()} can start decoding at the keyframe nearest a frame.
+     * <p>
+     * Layout: frame size (32), keyframe interval (16), then a record per frame made of
+     * its type (8) and its runs, then an end record (type 0). If the input ends partway
+     * through a frame, the last record holds those bits as a shorter keyframe, preceded
+     * by its size (32). The trailer is the byte offset of every keyframe record (64 each),
+     * the number of frames (32) and the number of keyframes (32).
+     */
+    public static void sequenceEncoding(int frameBits, int keyframeInterval) {
+        if (frameBits < 1) throw new IllegalArgumentException("Illegal frame size = " + frameBits);
+        if (keyframeInterval < 1 || keyframeInterval > 65535) {
+            throw new IllegalArgumentException("Illegal keyframe interval = " + keyframeInterval);
+        }
+        // Write out the frame size and how often keyframes appear
+        BinaryStdOut.write(frameBits);
+        BinaryStdOut.write(keyframeInterval, 16);
+        long offset = 6;
+        long[] keyframes = new long[16];
+        int keyframeCount = 0;
+
+        // Keep the previous frame around and swap the two buffers after every frame
+        boolean[] previous = new boolean[frameBits];
+        boolean[] current = new boolean[frameBits];
+        int frame;
+        for (frame = 0; !BinaryStdIn.isEmpty(); frame++) {
+            int n = 0;
+            while (n < frameBits && !BinaryStdIn.isEmpty()) {
+                current[n++] = BinaryStdIn.readBoolean();
+            }
+            boolean key = frame % keyframeInterval == 0;
+            if (key) {
+                if (keyframeCount == keyframes.length) {
+                    keyframes = Arrays.copyOf(keyframes, 2 * keyframeCount);
+                }
+                keyframes[keyframeCount++] = offset;
+            }
+            if (n < frameBits) {
+                // The input ended partway through a frame, so keep the bits there are
+                BinaryStdOut.write(PARTIAL_FRAME, 8);
+                BinaryStdOut.write(n);
+                offset += 5 + writeRuns(current, null, n);
+                frame++;
+                break;
+            }
+            BinaryStdOut.write(key ? KEYFRAME : DELTA_FRAME, 8);
+            offset += 1 + writeRuns(current, key ? null : previous, frameBits);
+
+            boolean[] temp = previous;
+            previous = current;
+            current = temp;
+        }
+        BinaryStdOut.write(END_OF_FRAMES, 8);
+
+        for (int i = 0; i < keyframeCount; i++) {
+            BinaryStdOut.write(keyframes[i]);
+        }
+        BinaryStdOut.write(frame);
+        BinaryStdOut.write(keyframeCount);
+        BinaryStdOut.close();
+    }
+
+    /**
+     * Sample Usage: java BitmapCompressor - 3 32 < in.bin > out.bin
+     * | This would compress in.bin, an image 32 bits wide, together with a pyramid of
+     * previews, each half the width and height of the one before.
+     * <p>
+     * Level 0 is the image itself. Each further level sets a pixel if any of the 2x2 pixels
+     * below it is set, or with {@code majority} if at least half of them are. Every level is
+     * written with the run length codec, followed by a trailer giving where each level starts
+     * and its size, so {@code decodeLevel()} can read a single level without touching the rest.
+     * Levels are added until {@code levels} of them exist or a level is 1 pixel wide or tall
+     * (an empty image has a single level).
+     * <p>
+     * Layout: total bits (32), width (32), level 0 runs, level 1 runs, ..., then for every level
+     * its byte offset (64), width (32) and height (32), and finally the number of levels (32).
+     */
+    public static void pyramidEncoding(int width, int levels, boolean majority) {
+        if (width < 1) throw new IllegalArgumentException("Illegal width = " + width);
+        if (levels < 1) throw new IllegalArgumentException("Illegal number of levels = " + levels);
+        boolean[] level = readBits();
+        int n = level.length;
+        int height = (n + width - 1) / width;
+        BinaryStdOut.write(n);
+        BinaryStdOut.write(width);
+
+        // Halving a 32-bit width or height reaches 1 within 32 levels
+        levels = Math.min(levels, 32);
+        long[] offsets = new long[levels];
+        int[] widths = new int[levels];
+        int[] heights = new int[levels];
+        long offset = 8;
+        int count = 0;
+        while (true) {
+            offsets[count] = offset;
+            widths[count] = width;
+            heights[count] = height;
+            offset += writeRuns(level, null, level.length);
+            count++;
+            if (count == levels || width == 1 || height <= 1 || n == 0) break;
+
+            // Reduce each 2x2 block to one pixel; the last row or column may be a half block
+            int w = (width + 1) / 2;
+            int h = (height + 1) / 2;
+            boolean[] next = new boolean[w * h];
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    int ones = 0;
+                    int cells = 0;
+                    for (int dy = 0; dy < 2; dy++) {
+                        for (int dx = 0; dx < 2; dx++) {
+                            int sx = 2 * x + dx;
+                            int sy = 2 * y + dy;
+                            if (sx >= width || sy >= height) continue;
+                            cells++;
+                            int i = sy * width + sx;
+                            if (i < level.length && level[i]) ones++;
+                        }
+                    }
+                    next[y * w + x] = majority ? 2 * ones >= cells : ones > 0;
+                }
+            }
+            level = next;
+            width = w;
+            height = h;
+        }
+
+        for (int k = 0; k < count; k++) {
+            BinaryStdOut.write(offsets[k]);
+            BinaryStdOut.write(widths[k]);
+            BinaryStdOut.write(heights[k]);
+        }
+        BinaryStdOut.write(count);
+        BinaryStdOut.close();
+    }
+
+    /**
+     * Sample Usage: java BitmapCompressor - 5 4 gray < in.bin > out.bin
+     * | This would compress in.bin, an image with 4 bits per pixel, one bit plane at a time.
+     * <p>
+     * Bit k of every pixel is collected into plane k, and each plane is written with the run
+     * length codec; the planes are encoded in parallel. With {@code gray}, pixels are Gray
+     * coded first, so neighbouring intensities differ in only one plane and the planes have
+     * longer runs. Planes are stored most significant first, so {@code planeDecoding()} can
+     * stop after the top few for a low-precision preview. If the input ends partway through
+     * a pixel, those bits are kept as they are and written back after the pixels on expansion.
+     * <p>
+     * Layout: pixel count (32), bits per pixel (8), Gray coded (8), number of leftover bits (8),
+     * the leftover bits (16, right aligned), the size in bytes of every plane (32 each), then
+     * the planes.
+     */
+    public static void planeEncoding(int bitsPerPixel, boolean gray) {
+        if (bitsPerPixel < 1 || bitsPerPixel > 16) {
+            throw new IllegalArgumentException("Illegal bits per pixel = " + bitsPerPixel);
+        }
+        boolean[] bits = readBits();
+        int count = bits.length / bitsPerPixel;
+        int extra = bits.length - count * bitsPerPixel;
+        int extraBits = 0;
+        for (int b = count * bitsPerPixel; b < bits.length; b++) {
+            extraBits = (extraBits << 1) | (bits[b] ? 1 : 0);
+        }
+        int[] pixels = new int[count];
+        for (int i = 0, b = 0; i < count; i++) {
+            int v = 0;
+            for (int j = 0; j < bitsPerPixel; j++) {
+                v = (v << 1) | (bits[b++] ? 1 : 0);
+            }
+            pixels[i] = gray ? v ^ (v >>> 1) : v;
+        }
+
+        // Plane 0 holds the most significant bit
+        ByteBuffer[] planes = new ByteBuffer[bitsPerPixel];
+        IntStream.range(0, bitsPerPixel).parallel().forEach(k -> {
+            int shift = bitsPerPixel - 1 - k;
+            boolean[] plane = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                plane[i] = ((pixels[i] >>> shift) & 1) == 1;
             }
-            BinaryStdOut.write(trueStreak, 8);
-            trueStreak=0;
+            ByteBuffer runs = ByteBuffer.allocate((int) maxRunsSize(count));
+            putRuns(plane, null, count, runs);
+            planes[k] = runs;
+        });
+
+        BinaryStdOut.write(count);
+        BinaryStdOut.write(bitsPerPixel, 8);
+        BinaryStdOut.write(gray ? 1 : 0, 8);
+        BinaryStdOut.write(extra, 8);
+        BinaryStdOut.write(extraBits, 16);
+        for (ByteBuffer runs : planes) {
+            BinaryStdOut.write(runs.position());
+        }
+        for (ByteBuffer runs : planes) {
+            drain(runs);
         }
         BinaryStdOut.close();
     }
@@ -149,34 +456,110 @@ public class BitmapCompressor {
             trueDecoding();
         } else if (decodingType == 1) {
             runLengthDecoding();
+        } else if (decodingType == 2) {
+            sequenceDecoding();
+        } else if (decodingType == 3) {
+            pyramidDecoding();
+        } else if (decodingType == 4) {
+            trueTrailerDecoding();
+        } else if (decodingType == 5) {
+            planeDecoding(Integer.MAX_VALUE);
         }
     }
 
     public static void trueDecoding() {
-        short length = BinaryStdIn.readShort();
-        int pos = 0;
-        while (!BinaryStdIn.isEmpty()) {
-            // Read in where the consecutive 1s start and for how long
-            short trueStart = BinaryStdIn.readShort();
-            int trueLength = BinaryStdIn.readInt(8);
-            // Fill in 0s while the current position is less than the start of the true streak
-            while (pos < trueStart) {
-                BinaryStdOut.write(0, 1);
-                pos++;
-            }
-            // Then fill in the 1s for the length given
-            for (int i = 0; i < trueLength; i++) {
-                BinaryStdOut.write(1, 1);
-                pos++;
+        ByteBuffer input = readBytes();
+        long length = getVarint(input);
+        expandStreaks(input, length);
+        BinaryStdOut.close();
+    }
+
+    /**
+     * Writes a bitmap of the given length whose streaks, as written by {@code writeStreaks()},
+     * fill the rest of {@code input}.
+     */
+    private static void expandStreaks(ByteBuffer input, long length) {
+        long pos = 0;
+        while (input.hasRemaining()) {
+            // Read in how far after the last streak the consecutive 1s start and for how long
+            long gap = getVarint(input);
+            long trueLength = getVarint(input) + 1;
+            if (gap < 0 || trueLength < 1 || gap > length - pos || trueLength > length - pos - gap) {
+                throw new IllegalStateException("Streak runs past the end of the bitmap");
             }
+            // Fill in 0s up to the start of the true streak, then the 1s for the length given
+            writeRun(false, pos, gap);
+            pos += gap;
+            writeRun(true, pos, trueLength);
+            pos += trueLength;
         }
         // Fill the rest of the file with 0s
-        for (int i = pos; i < length; i++) {
-            BinaryStdOut.write(0, 1);
+        writeRun(false, pos, length - pos);
+    }
+
+    // Reads a varint written by putVarint()
+    static long getVarint(ByteBuffer buffer) {
+        long x = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            x |= (b & 0x7fL) << shift;
+            shift += 7;
+        } while (b < 0 && shift < 70);
+        if (b < 0) throw new IllegalStateException("Varint longer than 10 bytes");
+        return x;
+    }
+
+    /**
+     * Writes count copies of bit, given that pos bits have been written so far. Once the
+     * output is byte aligned, whole 32-bit words are written instead of single bits.
+     */
+    private static void writeRun(boolean bit, long pos, long count) {
+        // Single bits up to the next byte boundary
+        while (count > 0 && (pos & 7) != 0) {
+            BinaryStdOut.write(bit);
+            pos++;
+            count--;
+        }
+        int word = bit ? -1 : 0;
+        for (; count >= 32; count -= 32) {
+            BinaryStdOut.write(word);
+        }
+        for (; count > 0; count--) {
+            BinaryStdOut.write(bit);
         }
+    }
+
+    /**
+     * Sample Usage: java BitmapCompressor + 4 < in.bin > out.bin
+     * | This would expand in.bin, written by {@code trueTrailerEncoding()}.
+     * <p>
+     * The streaks end where the trailer starts, so the whole input is read first.
+     */
+    public static void trueTrailerDecoding() {
+        ByteBuffer input = readBytes();
+        int size = input.limit();
+        if (size < 12) throw new IllegalStateException("Missing trailer");
+        int length = input.getInt(size - 4);
+        input.limit(size - 12);
+        expandStreaks(input, length);
         BinaryStdOut.close();
     }
 
+    // Reads the rest of standard input into a buffer
+    private static ByteBuffer readBytes() {
+        byte[] bytes = new byte[1024];
+        int size = 0;
+        while (!BinaryStdIn.isEmpty()) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, 2 * size);
+            }
+            bytes[size++] = BinaryStdIn.readByte();
+        }
+        return ByteBuffer.wrap(bytes, 0, size);
+    }
+
     public static void runLengthDecoding() {
         // Alternate between reading 8 bits for the 0s length and 8 bits for the 1s length
         while (!BinaryStdIn.isEmpty()) {
@@ -196,16 +579,308 @@ public class BitmapCompressor {
         BinaryStdOut.close();
     }
 
+    /**
+     * Same as {@code getRuns()} without delta frames.
+     */
+    static void getRuns(ByteBuffer runs, boolean[] bits, int n) {
+        getRuns(runs, bits, n, false);
+    }
+
+    /**
+     * Gets runs put by {@code putRuns()} until n bits have been decoded. The runs
+     * of 1s are set in {@code bits}, or flipped in place if {@code delta} is true.
+     */
+    private static void getRuns(ByteBuffer runs, boolean[] bits, int n, boolean delta) {
+        int pos = 0;
+        while (pos < n) {
+            // Read the number of 0s, which are left alone in a delta frame
+            int falseLength = runs.get() & 0xff;
+            if (pos + falseLength > n) throw new IllegalStateException("Run overflows the bitmap");
+            if (!delta) {
+                Arrays.fill(bits, pos, pos + falseLength, false);
+            }
+            pos += falseLength;
+            if (pos == n) { break; }
+
+            // Read the number of 1s, then set or flip them
+            int trueLength = runs.get() & 0xff;
+            if (pos + trueLength > n) throw new IllegalStateException("Run overflows the bitmap");
+            for (int i = pos; i < pos + trueLength; i++) {
+                bits[i] = delta ? !bits[i] : true;
+            }
+            pos += trueLength;
+        }
+    }
+
+    /**
+     * Sample Usage: java BitmapCompressor + 2 < in.bin > frames.bin
+     * | This would expand in.bin, written by {@code sequenceEncoding()}, into frames.bin.
+     * <p>
+     * A single frame buffer is reused: keyframes overwrite it and delta frames are
+     * applied to it in place before it is written out.
+     */
+    public static void sequenceDecoding() {
+        ByteBuffer input = readBytes();
+        int frameBits = input.getInt();
+        int keyframeInterval = input.getShort() & 0xffff;
+        if (frameBits < 1 || keyframeInterval < 1) throw new IllegalStateException("Corrupt sequence header");
+
+        // Stop at the end record; the keyframe table after it is only for decodeFrame()
+        boolean[] frame = new boolean[frameBits];
+        int type;
+        while ((type = input.get()) != END_OF_FRAMES) {
+            int n = frameBits;
+            if (type == PARTIAL_FRAME) {
+                n = input.getInt();
+                if (n < 1 || n >= frameBits) throw new IllegalStateException("Corrupt partial frame size = " + n);
+            }
+            else if (type != KEYFRAME && type != DELTA_FRAME) {
+                throw new IllegalStateException("Corrupt frame type = " + type);
+            }
+            getRuns(input, frame, n, type == DELTA_FRAME);
+            for (int j = 0; j < n; j++) {
+                BinaryStdOut.write(frame[j]);
+            }
+        }
+        BinaryStdOut.close();
+    }
+
+    /**
+     * Returns frame k of a file written by {@code sequenceEncoding()}. Only the trailer
+     * and the records from the keyframe at or before k up to k are read.
+     */
+    public static boolean[] decodeFrame(FileChannel channel, int k) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(6);
+        readFully(channel, header, 0);
+        int frameBits = header.getInt();
+        int keyframeInterval = header.getShort() & 0xffff;
+        if (frameBits < 1 || keyframeInterval < 1) throw new IllegalStateException("Corrupt sequence header");
+
+        // The frame and keyframe counts are in the last 8 bytes, preceded by 8 bytes per keyframe
+        long size = channel.size();
+        ByteBuffer counts = ByteBuffer.allocate(8);
+        readFully(channel, counts, size - 8);
+        int frames = counts.getInt();
+        int keyframes = counts.getInt();
+        if (k < 0 || k >= frames) throw new IllegalArgumentException("No frame " + k + " of " + frames);
+        int key = k / keyframeInterval;
+        if (key >= keyframes) throw new IllegalStateException("Corrupt keyframe table");
+        long table = size - 8 - 8L * keyframes;
+        ByteBuffer entry = ByteBuffer.allocate(16);
+        entry.limit(key + 1 < keyframes ? 16 : 8);
+        readFully(channel, entry, table + 8L * key);
+        long start = entry.getLong();
+        long end = key + 1 < keyframes ? entry.getLong() : table;
+        if (start < 6 || end < start || end - start > Integer.MAX_VALUE) throw new IllegalStateException("Corrupt keyframe table");
+
+        // Decode the keyframe, then apply the delta frames after it in place
+        ByteBuffer records = ByteBuffer.allocate((int) (end - start));
+        readFully(channel, records, start);
+        boolean[] frame = new boolean[frameBits];
+        for (int i = key * keyframeInterval; i <= k; i++) {
+            int type = records.get();
+            int n = frameBits;
+            if (type == PARTIAL_FRAME) {
+                n = records.getInt();
+                if (n < 1 || n >= frameBits) throw new IllegalStateException("Corrupt partial frame size = " + n);
+            }
+            else if (type != (i == key * keyframeInterval ? KEYFRAME : DELTA_FRAME)) {
+                throw new IllegalStateException("Corrupt frame type = " + type);
+            }
+            getRuns(records, frame, n, type == DELTA_FRAME);
+            if (n < frameBits) {
+                return Arrays.copyOf(frame, n);
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * Sample Usage: java BitmapCompressor + 3 < in.bin > out.bin
+     * | This would expand the full image from in.bin, written by {@code pyramidEncoding()}.
+     * The previews after it are never decoded.
+     */
+    public static void pyramidDecoding() {
+        ByteBuffer input = readBytes();
+        int n = input.getInt();
+        input.getInt();
+        if (n < 0) throw new IllegalStateException("Corrupt pyramid header");
+        boolean[] bits = new boolean[n];
+        getRuns(input, bits, n);
+        for (int i = 0; i < n; i++) {
+            BinaryStdOut.write(bits[i]);
+        }
+        BinaryStdOut.close();
+    }
+
+    /**
+     * Returns level k of a file written by {@code pyramidEncoding()}, row by row.
+     * Level k is {@code ceil(width / 2^k)} pixels wide. Only the trailer and the
+     * bytes of level k are read.
+     */
+    public static boolean[] decodeLevel(FileChannel channel, int k) throws IOException {
+        // The number of levels is in the last 4 bytes, preceded by 16 bytes per level
+        long size = channel.size();
+        ByteBuffer count = ByteBuffer.allocate(4);
+        readFully(channel, count, size - 4);
+        int levels = count.getInt();
+        if (levels < 1 || 16L * levels > size - 12) throw new IllegalStateException("Corrupt level table");
+        if (k < 0 || k >= levels) throw new IllegalArgumentException("No level " + k + " of " + levels);
+        long table = size - 4 - 16L * levels;
+        ByteBuffer entry = ByteBuffer.allocate(24);
+        entry.limit(k + 1 < levels ? 24 : 16);
+        readFully(channel, entry, table + 16L * k);
+        long start = entry.getLong();
+        int width = entry.getInt();
+        int height = entry.getInt();
+        long end = k + 1 < levels ? entry.getLong() : table;
+        if (start < 8 || end < start || end > table || end - start > Integer.MAX_VALUE
+                || width < 0 || height < 0 || (long) width * height > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Corrupt level table");
+        }
+
+        ByteBuffer runs = ByteBuffer.allocate((int) (end - start));
+        readFully(channel, runs, start);
+        // Level 0 may end partway through its last row
+        int n = width * height;
+        if (k == 0) {
+            ByteBuffer header = ByteBuffer.allocate(4);
+            readFully(channel, header, 0);
+            n = header.getInt();
+        }
+        boolean[] bits = new boolean[n];
+        getRuns(runs, bits, n);
+        return bits;
+    }
+
+    // fills buffer from the channel starting at position, then flips it for reading
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int r = channel.read(buffer, position);
+            if (r < 0) throw new IllegalStateException("Unexpected end of file");
+            position += r;
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Sample Usage: java BitmapCompressor + 5 2 < in.bin > out.bin
+     * | This would expand in.bin, written by {@code planeEncoding()}, from its top 2 planes.
+     * <p>
+     * Only the top {@code topPlanes} planes are decoded (all of them if it is larger) and
+     * the bits below them are left 0. The top bits of a Gray coded pixel depend only on
+     * its top Gray coded bits, so this works with or without Gray coding. Any leftover bits
+     * of a partial pixel are written back in full.
+     */
+    public static void planeDecoding(int topPlanes) {
+        int count = BinaryStdIn.readInt();
+        int bitsPerPixel = BinaryStdIn.readInt(8);
+        boolean gray = BinaryStdIn.readInt(8) == 1;
+        int extra = BinaryStdIn.readInt(8);
+        int extraBits = BinaryStdIn.readInt(16);
+        if (count < 0 || bitsPerPixel < 1 || bitsPerPixel > 16 || extra >= bitsPerPixel || extraBits >>> extra != 0) {
+            throw new IllegalStateException("Corrupt plane header");
+        }
+        int[] sizes = new int[bitsPerPixel];
+        for (int k = 0; k < bitsPerPixel; k++) {
+            sizes[k] = BinaryStdIn.readInt();
+            if (sizes[k] < (count == 0 ? 0 : 1) || sizes[k] > maxRunsSize(count)) {
+                throw new IllegalStateException("Corrupt size of plane " + k + " = " + sizes[k]);
+            }
+        }
+        int planes = Math.min(Math.max(topPlanes, 0), bitsPerPixel);
+
+        // Read the planes that are needed, then decode them in parallel
+        byte[][] runs = new byte[planes][];
+        for (int k = 0; k < planes; k++) {
+            runs[k] = new byte[sizes[k]];
+            for (int i = 0; i < sizes[k]; i++) {
+                runs[k][i] = BinaryStdIn.readByte();
+            }
+        }
+        boolean[][] decoded = new boolean[planes][];
+        IntStream.range(0, planes).parallel().forEach(k -> {
+            decoded[k] = new boolean[count];
+            getRuns(ByteBuffer.wrap(runs[k]), decoded[k], count);
+        });
+
+        for (int i = 0; i < count; i++) {
+            int v = 0;
+            int bit = 0;
+            for (int k = 0; k < bitsPerPixel; k++) {
+                if (k < planes) {
+                    // Undo the Gray code: each bit is the XOR of the Gray coded bits above it
+                    bit = gray ? bit ^ (decoded[k][i] ? 1 : 0) : (decoded[k][i] ? 1 : 0);
+                }
+                else {
+                    bit = 0;
+                }
+                v = (v << 1) | bit;
+            }
+            BinaryStdOut.write(v, bitsPerPixel);
+        }
+        if (extra > 0) {
+            BinaryStdOut.write(extraBits, extra);
+        }
+        BinaryStdOut.close();
+    }
+
     /**
      * When executed at the command-line, run {@code compress()} if the first command-line
      * argument is "-" and {@code expand()} if it is "+".
      * <p>
      * When executed at the command-line, run my algorithm if the second command-line
      * argument is "0" and Sedgewick's algorithm if it is "1".
+     * <p>
+     * If the second argument is "2", compress a sequence of frames whose size in bits
+     * is the third argument, with a keyframe every fourth argument frames (defaults to
+     * {@code DEFAULT_KEYFRAME_INTERVAL}). Expanding a sequence needs no extra arguments;
+     * with a third argument k, only frame k is written and standard input must be a file.
+     * <p>
+     * If the second argument is "3", compress an image whose width is the third argument
+     * together with a preview pyramid of at most the fourth argument levels (defaults to as
+     * many as fit), reduced with "or" or "majority" as given by the fifth argument. Expanding
+     * with a third argument k writes only level k; standard input must then be a file.
+     * <p>
+     * If the second argument is "4", use my algorithm with the length in a trailer, so
+     * {@code BitmapAppender} can extend the file.
+     * <p>
+     * If the second argument is "5", compress an image with the third argument bits per
+     * pixel (defaults to 8) one bit plane at a time, Gray coding it first only if the fourth
+     * argument is "gray". Expanding with a third argument k decodes only the top k planes.
      * @param args the command-line arguments
      */
-    public static void main(String[] args) {
-        if      (args[0].equals("-")) compress(Integer.parseInt(args[1]));
+    public static void main(String[] args) throws IOException {
+        if      (args[0].equals("-") && args[1].equals("2")) {
+            int keyframeInterval = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_KEYFRAME_INTERVAL;
+            sequenceEncoding(Integer.parseInt(args[2]), keyframeInterval);
+        }
+        else if (args[0].equals("-") && args[1].equals("3")) {
+            int levels = args.length > 3 ? Integer.parseInt(args[3]) : Integer.MAX_VALUE;
+            boolean majority = args.length > 4 && args[4].equals("majority");
+            pyramidEncoding(Integer.parseInt(args[2]), levels, majority);
+        }
+        else if (args[0].equals("-") && args[1].equals("5") && args.length > 2) {
+            planeEncoding(Integer.parseInt(args[2]), args.length > 3 && args[3].equals("gray"));
+        }
+        else if (args[0].equals("+") && args[1].equals("5") && args.length > 2) {
+            planeDecoding(Integer.parseInt(args[2]));
+        }
+        else if (args[0].equals("+") && args[1].equals("2") && args.length > 2) {
+            boolean[] bits = decodeFrame(new FileInputStream(FileDescriptor.in).getChannel(), Integer.parseInt(args[2]));
+            for (boolean bit : bits) {
+                BinaryStdOut.write(bit);
+            }
+            BinaryStdOut.close();
+        }
+        else if (args[0].equals("+") && args[1].equals("3") && args.length > 2) {
+            boolean[] bits = decodeLevel(new FileInputStream(FileDescriptor.in).getChannel(), Integer.parseInt(args[2]));
+            for (boolean bit : bits) {
+                BinaryStdOut.write(bit);
+            }
+            BinaryStdOut.close();
+        }
+        else if (args[0].equals("-")) compress(Integer.parseInt(args[1]));
         else if (args[0].equals("+")) expand(Integer.parseInt(args[1]));
         else throw new IllegalArgumentException("Illegal command line argument");
     }
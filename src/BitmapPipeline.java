@@ -0,0 +1,299 @@
+/******************************************************************************
+ *  Compilation:  javac BitmapPipeline.java
+ *  Execution:    java BitmapPipeline - 1 < input.bin > output.bin   (compress)
+ *  Execution:    java BitmapPipeline + 1 < input.bin > output.bin   (expand)
+ *  Dependencies: BitmapCompressor.java BinaryStdIn.java BinaryStdOut.java
+ *
+ *  Runs BitmapCompressor with reading, encoding and writing on three
+ *  separate threads, connected by bounded rings of recycled buffers.
+ *
+ *  % java BitmapPipeline - 1 < mystery.bin | java DumpBinary 0
+ *  1240 bits
+ ******************************************************************************/
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *  The {@code BitmapPipeline} class runs {@code BitmapCompressor} as the middle
+ *  stage of a three-stage pipeline. A reader thread prefetches standard input in
+ *  large blocks, the calling thread compresses or expands, and a writer thread
+ *  drains the output to standard output, so I/O and encoding overlap.
+ *  <p>
+ *  The stages hand each other {@code ByteBuffer}s through single-producer,
+ *  single-consumer rings. Every buffer is allocated up front and returned to
+ *  its producer once consumed, so the steady state allocates nothing.
+ *  <p>
+ *  {@code BinaryStdIn} and {@code BinaryStdOut} are connected to the pipeline
+ *  by replacing {@code System.in} and {@code System.out} before they are first
+ *  used, so the codecs themselves are unchanged.
+ *
+ *  @author Sohum Berry
+ */
+public final class BitmapPipeline {
+    private static final int BLOCK_SIZE = 1 << 16;    // bytes per buffer
+    private static final int BUFFERS = 4;             // buffers in flight per pipe (a power of 2)
+
+    // don't instantiate
+    private BitmapPipeline() { }
+
+    /**
+     * A bounded ring with exactly one producer thread and one consumer thread.
+     * Waiting spins briefly and then parks, so neither side takes a lock.
+     */
+    private static final class Ring {
+        private final ByteBuffer[] slots;
+        private final int mask;
+        private volatile long head;         // next slot to take, written by the consumer
+        private volatile long tail;         // next slot to fill, written by the producer
+        private volatile boolean closed;    // no more puts will follow
+
+        Ring(int capacity) {
+            slots = new ByteBuffer[capacity];
+            mask = capacity - 1;
+        }
+
+        void put(ByteBuffer buffer) {
+            long t = tail;
+            for (int spins = 0; t - head == slots.length; spins++) pause(spins);
+            slots[(int) (t & mask)] = buffer;
+            tail = t + 1;
+        }
+
+        // returns null once the ring is closed and empty
+        ByteBuffer take() {
+            long h = head;
+            for (int spins = 0; h == tail; spins++) {
+                if (closed && h == tail) return null;
+                pause(spins);
+            }
+            ByteBuffer buffer = slots[(int) (h & mask)];
+            slots[(int) (h & mask)] = null;
+            head = h + 1;
+            return buffer;
+        }
+
+        void close() {
+            closed = true;
+        }
+
+        private static void pause(int spins) {
+            if (spins < 100) Thread.onSpinWait();
+            else             LockSupport.parkNanos(50_000);
+        }
+    }
+
+    /**
+     * A pair of rings: filled buffers travel from producer to consumer and
+     * empty buffers travel back to be reused.
+     */
+    private static final class Pipe {
+        private final Ring full = new Ring(BUFFERS);
+        private final Ring free = new Ring(BUFFERS);
+
+        Pipe() {
+            for (int i = 0; i < BUFFERS; i++) {
+                free.put(ByteBuffer.allocateDirect(BLOCK_SIZE));
+            }
+        }
+    }
+
+    /**
+     * The consumer end of a pipe, read by {@code BinaryStdIn} as {@code System.in}.
+     */
+    private static final class PipeInputStream extends InputStream {
+        private final Pipe pipe;
+        private ByteBuffer current;
+        private boolean eof;
+
+        PipeInputStream(Pipe pipe) {
+            this.pipe = pipe;
+        }
+
+        // makes current a buffer with bytes remaining, or returns false at end of input
+        private boolean advance() {
+            while (current == null || !current.hasRemaining()) {
+                if (eof) return false;
+                if (current != null) pipe.free.put(current);
+                current = pipe.full.take();
+                if (current == null) {
+                    eof = true;
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read() {
+            if (!advance()) return -1;
+            return current.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!advance()) return -1;
+            int r = Math.min(len, current.remaining());
+            current.get(b, off, r);
+            return r;
+        }
+    }
+
+    /**
+     * The producer end of a pipe, written by {@code BinaryStdOut} as {@code System.out}.
+     */
+    private static final class PipeOutputStream extends OutputStream {
+        private final Pipe pipe;
+        private ByteBuffer current;
+        private boolean closed;
+
+        PipeOutputStream(Pipe pipe) {
+            this.pipe = pipe;
+        }
+
+        private void publish() {
+            current.flip();
+            pipe.full.put(current);
+            current = null;
+        }
+
+        @Override
+        public void write(int b) {
+            if (current == null) current = pipe.free.take();
+            current.put((byte) b);
+            if (!current.hasRemaining()) publish();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            while (len > 0) {
+                if (current == null) current = pipe.free.take();
+                int r = Math.min(len, current.remaining());
+                current.put(b, off, r);
+                off += r;
+                len -= r;
+                if (!current.hasRemaining()) publish();
+            }
+        }
+
+        @Override
+        public void flush() {
+            if (current != null && current.position() > 0) publish();
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            flush();
+            closed = true;
+            pipe.full.close();
+        }
+    }
+
+    /**
+     * Reads standard input into buffers taken from the pipe until end of file.
+     */
+    private static final class Reader extends Thread {
+        private final Pipe pipe;
+        private volatile IOException error;
+
+        Reader(Pipe pipe) {
+            super("bitmap-reader");
+            this.pipe = pipe;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            // Standard input is left open, since the codec may read it too, as decodeLevel() does
+            FileChannel channel = new FileInputStream(FileDescriptor.in).getChannel();
+            try {
+                while (true) {
+                    ByteBuffer buffer = pipe.free.take();
+                    buffer.clear();
+                    int r = 0;
+                    // fill the whole block unless the input ends first
+                    while (buffer.hasRemaining() && (r = channel.read(buffer)) != -1) { }
+                    buffer.flip();
+                    if (buffer.hasRemaining()) pipe.full.put(buffer);
+                    if (r == -1) break;
+                }
+            }
+            catch (IOException e) {
+                error = e;
+            }
+            finally {
+                pipe.full.close();
+            }
+        }
+    }
+
+    /**
+     * Writes buffers from the pipe to standard output and hands them back.
+     */
+    private static final class Writer extends Thread {
+        private final Pipe pipe;
+        private volatile IOException error;
+
+        Writer(Pipe pipe) {
+            super("bitmap-writer");
+            this.pipe = pipe;
+        }
+
+        @Override
+        public void run() {
+            FileChannel channel = new FileOutputStream(FileDescriptor.out).getChannel();
+            ByteBuffer buffer;
+            while ((buffer = pipe.full.take()) != null) {
+                // after an error keep draining, so the encoder never blocks on a full ring
+                try {
+                    while (error == null && buffer.hasRemaining()) channel.write(buffer);
+                }
+                catch (IOException e) {
+                    error = e;
+                }
+                buffer.clear();
+                pipe.free.put(buffer);
+            }
+        }
+    }
+
+    /**
+     * Takes the same command-line arguments as {@code BitmapCompressor.main()}
+     * and runs it with the reader and writer on their own threads.
+     *
+     * @param args the command-line arguments
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Pipe input = new Pipe();
+        Pipe output = new Pipe();
+        Reader reader = new Reader(input);
+        Writer writer = new Writer(output);
+
+        PrintStream stdout = System.out;
+        System.setIn(new PipeInputStream(input));
+        System.setOut(new PrintStream(new PipeOutputStream(output), false));
+        reader.start();
+        writer.start();
+        try {
+            BitmapCompressor.main(args);
+        }
+        finally {
+            // BinaryStdOut.close() normally ends the output, but not if the codec threw
+            System.out.close();
+            writer.join();
+            System.setOut(stdout);
+        }
+        if (reader.error != null) throw new IllegalStateException("Could not read standard input", reader.error);
+        if (writer.error != null) throw new IllegalStateException("Could not write standard output", writer.error);
+    }
+}
@@ -0,0 +1,138 @@
+/******************************************************************************
+ *  Compilation:  javac Decoder.java
+ *  Dependencies: BitmapCompressor.java
+ *
+ *  Expands bitmaps held in memory, for use as a library instead of
+ *  through standard input and standard output.
+ *
+ *  long nbits = Decoder.RUN_LENGTH.decode(in, bits);
+ ******************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ *  The {@code Decoder} class expands a bitmap compressed by {@code Encoder} or by
+ *  {@code BitmapCompressor.compress()} from a {@code ByteBuffer} into a
+ *  caller-supplied {@code long[]} or {@code java.util.BitSet}. Nothing is
+ *  allocated, so the destination can be reused across calls.
+ *  <p>
+ *  The decoder reads from the position of the buffer to its limit. Run lengths
+ *  do not record where they end, so the limit must be the end of the bitmap.
+ *  Every bit up to the returned length is overwritten, so the destination does
+ *  not need to be cleared first. Bits beyond it are left unchanged.
+ *
+ *  @author Sohum Berry
+ */
+public final class Decoder {
+    /** My encoding algorithm, as in {@code BitmapCompressor.trueDecoding()}. */
+    public static final Decoder TRUE = new Decoder(0);
+    /** Sedgewick's algorithm, as in {@code BitmapCompressor.runLengthDecoding()}. */
+    public static final Decoder RUN_LENGTH = new Decoder(1);
+
+    private final int codec;
+
+    private Decoder(int codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Expands {@code in} into {@code out} and returns the number of bits in the bitmap.
+     * Bit i is stored as {@code (out[i >>> 6] >>> (i & 63)) & 1}.
+     *
+     * @throws IllegalArgumentException if {@code out} is too small for the bitmap
+     */
+    public long decode(ByteBuffer in, long[] out) {
+        long capacity = 64L * out.length;
+        long pos = 0;
+        if (codec == 1) {
+            while (in.hasRemaining()) {
+                int falseLength = in.get() & 0xff;
+                if (pos + falseLength > capacity) throw new IllegalArgumentException("Output too small");
+                fill(out, pos, pos + falseLength, false);
+                pos += falseLength;
+                if (!in.hasRemaining()) break;
+                int trueLength = in.get() & 0xff;
+                if (pos + trueLength > capacity) throw new IllegalArgumentException("Output too small");
+                fill(out, pos, pos + trueLength, true);
+                pos += trueLength;
+            }
+            return pos;
+        }
+
+        long length = BitmapCompressor.getVarint(in);
+        if (length > capacity) throw new IllegalArgumentException("Output too small");
+        while (in.hasRemaining()) {
+            long gap = BitmapCompressor.getVarint(in);
+            long trueLength = BitmapCompressor.getVarint(in) + 1;
+            if (gap < 0 || trueLength < 1 || pos + gap + trueLength > length) {
+                throw new IllegalStateException("Streak runs past the end of the bitmap");
+            }
+            fill(out, pos, pos + gap, false);
+            pos += gap;
+            fill(out, pos, pos + trueLength, true);
+            pos += trueLength;
+        }
+        fill(out, pos, length, false);
+        return length;
+    }
+
+    /**
+     * Expands {@code in} into {@code out} and returns the number of bits in the bitmap.
+     */
+    public int decode(ByteBuffer in, BitSet out) {
+        long pos = 0;
+        if (codec == 1) {
+            while (in.hasRemaining()) {
+                int falseLength = in.get() & 0xff;
+                out.clear(index(pos), index(pos + falseLength));
+                pos += falseLength;
+                if (!in.hasRemaining()) break;
+                int trueLength = in.get() & 0xff;
+                out.set(index(pos), index(pos + trueLength));
+                pos += trueLength;
+            }
+            return (int) pos;
+        }
+
+        long length = BitmapCompressor.getVarint(in);
+        index(length);
+        while (in.hasRemaining()) {
+            long gap = BitmapCompressor.getVarint(in);
+            long trueLength = BitmapCompressor.getVarint(in) + 1;
+            if (gap < 0 || trueLength < 1 || pos + gap + trueLength > length) {
+                throw new IllegalStateException("Streak runs past the end of the bitmap");
+            }
+            out.clear((int) pos, (int) (pos + gap));
+            pos += gap;
+            out.set((int) pos, (int) (pos + trueLength));
+            pos += trueLength;
+        }
+        out.clear((int) pos, (int) length);
+        return (int) length;
+    }
+
+    // A BitSet holds at most Integer.MAX_VALUE bits
+    private static int index(long i) {
+        if (i > Integer.MAX_VALUE) throw new IllegalArgumentException("Bitmap too large for a BitSet");
+        return (int) i;
+    }
+
+    // Sets or clears bits [from, to) a word at a time
+    private static void fill(long[] bits, long from, long to, boolean value) {
+        if (from >= to) return;
+        int first = (int) (from >>> 6);
+        int last = (int) ((to - 1) >>> 6);
+        long firstMask = -1L << from;
+        long lastMask = -1L >>> -to;
+        if (first == last) {
+            long mask = firstMask & lastMask;
+            bits[first] = value ? bits[first] | mask : bits[first] & ~mask;
+            return;
+        }
+        bits[first] = value ? bits[first] | firstMask : bits[first] & ~firstMask;
+        Arrays.fill(bits, first + 1, last, value ? -1L : 0L);
+        bits[last] = value ? bits[last] | lastMask : bits[last] & ~lastMask;
+    }
+}
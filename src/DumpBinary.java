@@ -1,7 +1,10 @@
 /******************************************************************************
  *  Compilation:  javac DumpBinary.java
- *  Execution:    java BinaryDump n < file
- *  Dependencies: BinaryStdIn.java
+ *  Execution:    java DumpBinary n < file
+ *  Execution:    java DumpBinary hex n < file
+ *  Execution:    java DumpBinary runs < file
+ *  Execution:    java DumpBinary density n < file
+ *  Dependencies: none
  *
  *  Reads in a binary file and writes out the bits, n per line.
  *
@@ -12,43 +15,344 @@
  * 011101000001010101000100011101010100010001110100001101010100
  * 010000010100011101000011
  * 264 bits
+ *
+ *  % java DumpBinary 0 < mystery.bin
+ *  8000 bits
+ *
+ *  % java DumpBinary hex 8 < q32x48.bin
+ *  00 00 00 00 00 00 00 00
+ *  ...
+ *  1536 bits
  ******************************************************************************/
 
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
 /**
  *  The {@code DumpBinary} class provides a client for displaying the contents
- *  of a binary file in binary.
+ *  of a binary file in binary, in hex, as a histogram of run lengths, or as
+ *  a per-row summary of the density of 1 bits.
+ *  <p>
+ *  Input is read from standard input in large blocks and formatted a whole
+ *  byte at a time through precomputed lookup tables, and the output is
+ *  written in large chunks rather than one character at a time.
  *
  *  @author Robert Sedgewick
  *  @author Kevin Wayne
  *  @author Zach Blick
  */
 public class DumpBinary {
+    private static final int BLOCK_SIZE = 1 << 16;    // bytes read from standard input at a time
+    private static final int FLUSH_SIZE = 1 << 16;    // chars buffered before writing out
+    private static final int DENSE_RUNS = 1 << 12;    // run lengths counted in an array; longer ones in a map
+
+    // BITS[b] holds the 8 characters '0'/'1' of byte b, most significant bit first
+    private static final char[][] BITS = new char[256][8];
+    // HEX[b] holds the 2 hex digits of byte b
+    private static final char[][] HEX = new char[256][2];
+
+    static {
+        char[] digits = "0123456789abcdef".toCharArray();
+        for (int b = 0; b < 256; b++) {
+            for (int i = 0; i < 8; i++) {
+                BITS[b][i] = ((b >>> (7 - i)) & 1) == 1 ? '1' : '0';
+            }
+            HEX[b][0] = digits[b >>> 4];
+            HEX[b][1] = digits[b & 0xf];
+        }
+    }
+
+    // don't instantiate
+    private DumpBinary() { }
+
+    /**
+     * Writes the bits of standard input, {@code bitsPerLine} per line, followed
+     * by the number of bits.
+     */
+    private static void dumpBits(InputStream in, Writer out, int bitsPerLine) throws IOException {
+        byte[] block = new byte[BLOCK_SIZE];
+        char[] chars = new char[FLUSH_SIZE + 8 + 1];
+        int len = 0;
+        int col = 0;
+        long count = 0;
+        int r;
+        while ((r = in.read(block)) != -1) {
+            for (int i = 0; i < r; i++) {
+                char[] bits = BITS[block[i] & 0xff];
+                // fast path: the whole byte fits on the current line
+                if (col + 8 <= bitsPerLine) {
+                    System.arraycopy(bits, 0, chars, len, 8);
+                    len += 8;
+                    col += 8;
+                    if (col == bitsPerLine) {
+                        chars[len++] = '\n';
+                        col = 0;
+                    }
+                }
+                else {
+                    for (int j = 0; j < 8; j++) {
+                        chars[len++] = bits[j];
+                        if (++col == bitsPerLine) {
+                            chars[len++] = '\n';
+                            col = 0;
+                            if (len >= FLUSH_SIZE) {
+                                out.write(chars, 0, len);
+                                len = 0;
+                            }
+                        }
+                    }
+                }
+                if (len >= FLUSH_SIZE) {
+                    out.write(chars, 0, len);
+                    len = 0;
+                }
+            }
+            count += r;
+        }
+        out.write(chars, 0, len);
+        if (col != 0 || count == 0) out.write('\n');
+        out.write(count * 8 + " bits\n");
+    }
+
+    /**
+     * Writes the bytes of standard input as hex, {@code bytesPerLine} per line,
+     * followed by the number of bits.
+     */
+    private static void dumpHex(InputStream in, Writer out, int bytesPerLine) throws IOException {
+        byte[] block = new byte[BLOCK_SIZE];
+        char[] chars = new char[FLUSH_SIZE + 3];
+        int len = 0;
+        int col = 0;
+        long count = 0;
+        int r;
+        while ((r = in.read(block)) != -1) {
+            for (int i = 0; i < r; i++) {
+                char[] hex = HEX[block[i] & 0xff];
+                if (col != 0) chars[len++] = ' ';
+                chars[len++] = hex[0];
+                chars[len++] = hex[1];
+                if (++col == bytesPerLine) {
+                    chars[len++] = '\n';
+                    col = 0;
+                }
+                if (len >= FLUSH_SIZE) {
+                    out.write(chars, 0, len);
+                    len = 0;
+                }
+            }
+            count += r;
+        }
+        out.write(chars, 0, len);
+        if (col != 0 || count == 0) out.write('\n');
+        out.write(count * 8 + " bits\n");
+    }
+
+    /**
+     * Writes a histogram of the lengths of the runs of 0s and of 1s in standard
+     * input, as used by {@code BitmapCompressor.runLengthEncoding()}.
+     */
+    private static void dumpRuns(InputStream in, Writer out) throws IOException {
+        // short runs are counted in arrays indexed by length, long runs in sparse maps,
+        // so one long run of a blank page costs no more than a short one
+        long[][] counts = { new long[DENSE_RUNS], new long[DENSE_RUNS] };
+        TreeMap<Long, long[]> longRuns = new TreeMap<>();     // length -> { 0-runs, 1-runs }
+        byte[] block = new byte[BLOCK_SIZE];
+        int current = 0;
+        long run = 0;
+        long count = 0;
+        long longest = 0;
+        int r;
+        while ((r = in.read(block)) != -1) {
+            for (int i = 0; i < r; i++) {
+                int b = block[i] & 0xff;
+                // whole byte continues the current run
+                if ((current == 0 && b == 0x00) || (current == 1 && b == 0xff)) {
+                    run += 8;
+                    continue;
+                }
+                for (int j = 7; j >= 0; j--) {
+                    int bit = (b >>> j) & 1;
+                    if (bit == current) {
+                        run++;
+                    }
+                    else {
+                        if (run > 0) record(counts, longRuns, current, run);
+                        longest = Math.max(longest, run);
+                        current = bit;
+                        run = 1;
+                    }
+                }
+            }
+            count += r;
+        }
+        if (run > 0) record(counts, longRuns, current, run);
+        longest = Math.max(longest, run);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("length      0-runs      1-runs\n");
+        for (int length = 1; length < DENSE_RUNS; length++) {
+            long z = counts[0][length];
+            long o = counts[1][length];
+            if (z == 0 && o == 0) continue;
+            sb.append(String.format("%6d %11d %11d%n", length, z, o));
+        }
+        for (Map.Entry<Long, long[]> e : longRuns.entrySet()) {
+            sb.append(String.format("%6d %11d %11d%n", e.getKey(), e.getValue()[0], e.getValue()[1]));
+        }
+        sb.append("longest run: ").append(longest).append('\n');
+        sb.append(count * 8).append(" bits\n");
+        out.write(sb.toString());
+    }
+
+    // increments the count for a run of the given bit and length
+    private static void record(long[][] counts, Map<Long, long[]> longRuns, int bit, long run) {
+        if (run < DENSE_RUNS) counts[bit][(int) run]++;
+        else                  longRuns.computeIfAbsent(run, k -> new long[2])[bit]++;
+    }
+
+    /**
+     * Writes, for every row of {@code bitsPerLine} bits, the number of 1 bits
+     * and the fraction of the row they fill, followed by the overall density.
+     */
+    private static void dumpDensity(InputStream in, Writer out, int bitsPerLine) throws IOException {
+        byte[] block = new byte[BLOCK_SIZE];
+        StringBuilder sb = new StringBuilder(FLUSH_SIZE + 64);
+        long row = 0;
+        int col = 0;
+        int rowOnes = 0;
+        long ones = 0;
+        long count = 0;
+        int r;
+        while ((r = in.read(block)) != -1) {
+            for (int i = 0; i < r; i++) {
+                int b = block[i] & 0xff;
+                // fast path: the whole byte fits on the current row
+                if (col + 8 <= bitsPerLine) {
+                    rowOnes += Integer.bitCount(b);
+                    col += 8;
+                }
+                else {
+                    for (int j = 7; j >= 0; j--) {
+                        rowOnes += (b >>> j) & 1;
+                        if (++col == bitsPerLine) {
+                            appendRow(sb, row++, rowOnes, col);
+                            ones += rowOnes;
+                            rowOnes = 0;
+                            col = 0;
+                        }
+                    }
+                }
+                if (col == bitsPerLine) {
+                    appendRow(sb, row++, rowOnes, col);
+                    ones += rowOnes;
+                    rowOnes = 0;
+                    col = 0;
+                }
+                if (sb.length() >= FLUSH_SIZE) {
+                    out.write(sb.toString());
+                    sb.setLength(0);
+                }
+            }
+            count += r;
+        }
+        if (col != 0) {
+            appendRow(sb, row, rowOnes, col);
+            ones += rowOnes;
+        }
+        long bits = count * 8;
+        sb.append(String.format("%d of %d bits set (%.2f%%)%n", ones, bits, bits == 0 ? 0.0 : 100.0 * ones / bits));
+        out.write(sb.toString());
+    }
+
+    private static void appendRow(StringBuilder sb, long row, int ones, int width) {
+        sb.append(String.format("%8d %8d %7.2f%%%n", row, ones, 100.0 * ones / width));
+    }
+
+    /**
+     * Writes the number of bits in standard input. When standard input is
+     * redirected from a file, the count comes from the file size and no bits
+     * are read; otherwise the input is skipped over in large blocks.
+     */
+    private static void countBits(FileInputStream in, Writer out) throws IOException {
+        long count;
+        try {
+            long size = in.getChannel().size();
+            long position = in.getChannel().position();
+            count = size - position;
+            if (size == 0) count = skipAll(in);
+        }
+        catch (IOException e) {
+            // not a regular file (e.g. a pipe)
+            count = skipAll(in);
+        }
+        out.write(count * 8 + " bits\n");
+    }
+
+    private static long skipAll(InputStream in) throws IOException {
+        byte[] block = new byte[BLOCK_SIZE];
+        long count = 0;
+        int r;
+        while ((r = in.read(block)) != -1) count += r;
+        return count;
+    }
+
     /**
      * Reads in a sequence of bytes from standard input and writes
      * them to standard output in binary, k bits per line,
      * where k is given as a command-line integer (defaults
      * to 16 if no integer is specified); also writes the number
-     * of bits.
+     * of bits. If k is 0, only the number of bits is written.
+     * <p>
+     * If the first argument is "hex", writes the bytes in hex, k bytes
+     * per line (defaults to 16); if it is "runs", writes a histogram of
+     * the lengths of the runs of 0s and 1s; if it is "density", writes the
+     * number of 1 bits in every row of k bits (defaults to 16).
      *
      * @param args the command-line arguments
      */
-    public static void main(String[] args) {
-        int bitsPerLine = 16;
-        if (args.length == 1) {
-            bitsPerLine = Integer.parseInt(args[0]);
+    public static void main(String[] args) throws IOException {
+        FileInputStream in = new FileInputStream(FileDescriptor.in);
+        Writer out = new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.US_ASCII);
+
+        String mode = args.length > 0 && !isNumber(args[0]) ? args[0] : "bits";
+        int width = 16;
+        if (args.length > 0 && isNumber(args[args.length - 1])) {
+            width = Integer.parseInt(args[args.length - 1]);
         }
+        if (width < 0) throw new IllegalArgumentException("Illegal width = " + width);
 
-        int count;
-        for (count = 0; !BinaryStdIn.isEmpty(); count++) {
-            if (bitsPerLine == 0) {
-                BinaryStdIn.readBoolean();
-                continue;
-            }
-            else if (count != 0 && count % bitsPerLine == 0) System.out.println();
-            if (BinaryStdIn.readBoolean()) System.out.print(1);
-            else                           System.out.print(0);
+        if (mode.equals("bits")) {
+            if (width == 0) countBits(in, out);
+            else            dumpBits(in, out, width);
+        }
+        else if (mode.equals("hex")) {
+            if (width == 0) countBits(in, out);
+            else            dumpHex(in, out, width);
+        }
+        else if (mode.equals("runs")) {
+            dumpRuns(in, out);
+        }
+        else if (mode.equals("density")) {
+            if (width == 0) throw new IllegalArgumentException("Illegal width = " + width);
+            dumpDensity(in, out, width);
+        }
+        else throw new IllegalArgumentException("Illegal command line argument");
+        out.flush();
+    }
+
+    private static boolean isNumber(String s) {
+        if (s.isEmpty()) return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (!Character.isDigit(s.charAt(i)) && !(i == 0 && s.charAt(i) == '-')) return false;
         }
-        if (bitsPerLine != 0) System.out.println();
-        System.out.println(count + " bits");
+        return true;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,149 @@
+/******************************************************************************
+ *  Compilation:  javac Encoder.java
+ *  Dependencies: BitmapCompressor.java
+ *
+ *  Compresses bitmaps held in memory, for use as a library instead of
+ *  through standard input and standard output.
+ *
+ *  ByteBuffer out = ByteBuffer.allocate((int) Encoder.RUN_LENGTH.maxEncodedSize(nbits));
+ *  Encoder.RUN_LENGTH.encode(bits, nbits, out);
+ ******************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ *  The {@code Encoder} class compresses a bitmap from a {@code long[]} or a
+ *  {@code java.util.BitSet} into a caller-supplied {@code ByteBuffer}, producing
+ *  the same bytes as {@code BitmapCompressor.compress()} would for the same bits.
+ *  Nothing is allocated, so the destination buffer can be reused across calls.
+ *  <p>
+ *  Bit i of a {@code long[]} bitmap is {@code (bits[i >>> 6] >>> (i & 63)) & 1},
+ *  the same layout as {@code BitSet.toLongArray()}. Runs are found a whole word
+ *  at a time rather than bit by bit.
+ *
+ *  @author Sohum Berry
+ */
+public final class Encoder {
+    /** My encoding algorithm, as in {@code BitmapCompressor.trueEncoding()}. */
+    public static final Encoder TRUE = new Encoder(0);
+    /** Sedgewick's algorithm, as in {@code BitmapCompressor.runLengthEncoding()}. */
+    public static final Encoder RUN_LENGTH = new Encoder(1);
+
+    private final int codec;
+
+    private Encoder(int codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Returns the largest number of bytes {@code encode()} can write for nbits bits.
+     */
+    public long maxEncodedSize(long nbits) {
+        // Streaks: at most 2 bytes per 2 bits, plus a byte per 128 bits of gap or length,
+        // plus the varint length.
+        if (codec == 1) return BitmapCompressor.maxRunsSize(nbits);
+        else            return nbits + nbits / 64 + 16;
+    }
+
+    /**
+     * Compresses the first nbits bits of {@code bits} into {@code out}, starting at its
+     * position, and returns the number of bytes written.
+     *
+     * @throws java.nio.BufferOverflowException if {@code out} fills up
+     */
+    public int encode(long[] bits, long nbits, ByteBuffer out) {
+        if (nbits < 0 || nbits > 64L * bits.length) throw new IllegalArgumentException("Illegal number of bits = " + nbits);
+        int start = out.position();
+        if (codec == 1) {
+            long pos = 0;
+            while (pos < nbits) {
+                long one = nextSetBit(bits, pos, nbits);
+                BitmapCompressor.putRun(out, one - pos);
+                pos = one;
+                if (pos == nbits) break;
+                long zero = nextClearBit(bits, pos, nbits);
+                BitmapCompressor.putRun(out, zero - pos);
+                pos = zero;
+            }
+        }
+        else {
+            BitmapCompressor.putVarint(out, nbits);
+            long previousEnd = 0;
+            long pos = 0;
+            while ((pos = nextSetBit(bits, pos, nbits)) < nbits) {
+                long end = nextClearBit(bits, pos, nbits);
+                BitmapCompressor.putVarint(out, pos - previousEnd);
+                BitmapCompressor.putVarint(out, end - pos - 1);
+                previousEnd = end;
+                pos = end;
+            }
+        }
+        return out.position() - start;
+    }
+
+    /**
+     * Compresses the first nbits bits of {@code bits} into {@code out}, starting at its
+     * position, and returns the number of bytes written.
+     *
+     * @throws java.nio.BufferOverflowException if {@code out} fills up
+     */
+    public int encode(BitSet bits, int nbits, ByteBuffer out) {
+        if (nbits < 0) throw new IllegalArgumentException("Illegal number of bits = " + nbits);
+        int start = out.position();
+        if (codec == 1) {
+            int pos = 0;
+            while (pos < nbits) {
+                int one = nextSetBit(bits, pos, nbits);
+                BitmapCompressor.putRun(out, one - pos);
+                pos = one;
+                if (pos == nbits) break;
+                int zero = Math.min(bits.nextClearBit(pos), nbits);
+                BitmapCompressor.putRun(out, zero - pos);
+                pos = zero;
+            }
+        }
+        else {
+            BitmapCompressor.putVarint(out, nbits);
+            int previousEnd = 0;
+            int pos = 0;
+            while ((pos = nextSetBit(bits, pos, nbits)) < nbits) {
+                int end = Math.min(bits.nextClearBit(pos), nbits);
+                BitmapCompressor.putVarint(out, pos - previousEnd);
+                BitmapCompressor.putVarint(out, end - pos - 1);
+                previousEnd = end;
+                pos = end;
+            }
+        }
+        return out.position() - start;
+    }
+
+    private static int nextSetBit(BitSet bits, int from, int nbits) {
+        int i = bits.nextSetBit(from);
+        return i < 0 || i >= nbits ? nbits : i;
+    }
+
+    // Returns the index of the first 1 at or after from, or nbits if there is none
+    private static long nextSetBit(long[] bits, long from, long nbits) {
+        if (from >= nbits) return nbits;
+        int i = (int) (from >>> 6);
+        long word = bits[i] & (-1L << from);
+        while (true) {
+            if (word != 0) return Math.min(((long) i << 6) + Long.numberOfTrailingZeros(word), nbits);
+            if (((long) ++i << 6) >= nbits) return nbits;
+            word = bits[i];
+        }
+    }
+
+    // Returns the index of the first 0 at or after from, or nbits if there is none
+    private static long nextClearBit(long[] bits, long from, long nbits) {
+        if (from >= nbits) return nbits;
+        int i = (int) (from >>> 6);
+        long word = ~bits[i] & (-1L << from);
+        while (true) {
+            if (word != 0) return Math.min(((long) i << 6) + Long.numberOfTrailingZeros(word), nbits);
+            if (((long) ++i << 6) >= nbits) return nbits;
+            word = ~bits[i];
+        }
+    }
+}